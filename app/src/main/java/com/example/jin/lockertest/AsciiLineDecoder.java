@@ -0,0 +1,48 @@
+package com.example.jin.lockertest;
+
+/**
+ * Decodes the plain {@link BluetoothClient#DELIMITER} terminated ASCII lines, the default framing.
+ * <p>
+ * If a switch line is given, decoding stops right after that line is received so the bytes following it
+ * can be handed to the negotiated decoder, see {@link CompactFrameDecoder}.
+ */
+public class AsciiLineDecoder implements FrameDecoder {
+    private final String mSwitchLine;
+    private StringBuilder mMessageBuffer = new StringBuilder();
+    private boolean mSwitched = false;
+
+    public AsciiLineDecoder() {
+        this(null);
+    }
+
+    public AsciiLineDecoder(String switchLine) {
+        mSwitchLine = switchLine;
+    }
+
+    public boolean hasSwitched() {
+        return mSwitched;
+    }
+
+    @Override
+    public int decode(byte[] buffer, int offset, int length, Sink sink) {
+        for (int i = offset; i < offset + length; i++) {
+            char ch = (char) (buffer[i] & 0xFF);
+            if (ch == '\r') {
+                // the board may terminate lines with CRLF
+                continue;
+            }
+            if (ch != BluetoothClient.DELIMITER) {
+                mMessageBuffer.append(ch);
+                continue;
+            }
+            String message = mMessageBuffer.toString();
+            mMessageBuffer = new StringBuilder();
+            if (mSwitchLine != null && mSwitchLine.equals(message)) {
+                mSwitched = true;
+                return i + 1 - offset;
+            }
+            sink.onFrame(message);
+        }
+        return length;
+    }
+}
@@ -38,6 +38,11 @@ import java.util.UUID;
  * How to control reconnect
  * -> Limit retry of reconnect to 1 time only for simplicity
  * -> When disconnected, this class send message to handler, the caller can then recall the connect method
+ * <p>
+ * Framing
+ * Lines from the board are DELIMITER terminated ASCII. When compact framing is enabled, the client asks the board
+ * to switch to the binary framing right after connecting, see {@link CompactFrameDecoder}. Boards that don't
+ * acknowledge stay on ASCII, and every new connection starts on ASCII again.
  */
 
 public class BluetoothClient implements BluetoothClientInterface {
@@ -52,13 +57,24 @@ public class BluetoothClient implements BluetoothClientInterface {
     private ConnectThread mConnectThread;
     private ConnectedThread mConnectedThread;
     private String mTargetDeviceName;
+    private final ResponseAggregator mResponseAggregator;
+    private final boolean mCompactFraming;
 
     private SafeBroadcastReceiver mBluetoothBroadcastReceiver = null;
 
     public BluetoothClient(Handler handler, final String targetDeviceName) {
+        this(handler, targetDeviceName, false);
+    }
+
+    /**
+     * @param compactFraming negotiate the compact binary framing for incoming traffic after connecting.
+     */
+    public BluetoothClient(Handler handler, final String targetDeviceName, boolean compactFraming) {
         mAdapter = BluetoothAdapter.getDefaultAdapter();
         mHandler = handler;
         mTargetDeviceName = targetDeviceName;
+        mCompactFraming = compactFraming;
+        mResponseAggregator = new ResponseAggregator(handler);
         setState(STATE_NONE);
         mBluetoothBroadcastReceiver = new SafeBroadcastReceiver() {
             @Override
@@ -82,6 +98,10 @@ public class BluetoothClient implements BluetoothClientInterface {
         return mBluetoothBroadcastReceiver;
     }
 
+    public ResponseAggregator getResponseAggregator() {
+        return mResponseAggregator;
+    }
+
     private synchronized void setState(int state) {
         Log.d(TAG, "setState() " + mState + " -> " + state);
         if (mState == STATE_CONNECTED && state != STATE_CONNECTED) {
@@ -134,6 +154,7 @@ public class BluetoothClient implements BluetoothClientInterface {
             mConnectedThread.cancel();
             mConnectedThread = null;
         }
+        mResponseAggregator.reset();
         setState(STATE_NONE);
     }
 
@@ -147,8 +168,16 @@ public class BluetoothClient implements BluetoothClientInterface {
     public synchronized void sendCommand(String command) {
         if (getState() != STATE_CONNECTED)
             return;
+        mResponseAggregator.onCommandSent(command);
+        writeCommand(command);
+    }
+
+    /**
+     * @return false if the write failed, the connection is torn down by then.
+     */
+    private synchronized boolean writeCommand(String command) {
         command = command + DELIMITER;
-        mConnectedThread.write(command.getBytes(Charset.forName("US-ASCII")));
+        return mConnectedThread.write(command.getBytes(Charset.forName("US-ASCII")));
     }
 
     /**
@@ -160,8 +189,21 @@ public class BluetoothClient implements BluetoothClientInterface {
         Log.d(TAG, "startConnectedThread");
         disconnect();
         // Start the thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(socket);
-        mConnectedThread.start();
+        ConnectedThread connectedThread = new ConnectedThread(socket);
+        mConnectedThread = connectedThread;
+        if (mCompactFraming) {
+            // sent under the lock and before the state becomes connected, so no other command can go out first.
+            // A failed write has already called disconnect() on this thread (the lock is reentrant), which cleared
+            // mConnectedThread and closed the socket. Don't report the dead link as connected, connect again instead,
+            // as nobody gets MESSAGE_CONNECTION_LOST for a link that never was connected.
+            if (!writeCommand(CompactFrameDecoder.NEGOTIATION_REQUEST) || mConnectedThread != connectedThread) {
+                Log.w(TAG, "unable to send framing negotiation, reconnecting");
+                connect();
+                return;
+            }
+        }
+        setState(STATE_CONNECTED);
+        connectedThread.start();
     }
 
     private synchronized BluetoothDevice getTargetDevice() {
@@ -244,7 +286,8 @@ public class BluetoothClient implements BluetoothClientInterface {
         private final BluetoothSocket mmSocket;
         private final InputStream mmInStream;
         private final OutputStream mmOutStream;
-        private StringBuilder mmMessageBuffer = new StringBuilder();
+        private final AsciiLineDecoder mmAsciiDecoder;
+        private FrameDecoder mmDecoder;
 
         public ConnectedThread(BluetoothSocket socket) {
             Log.d(TAG, "create startConnectedThread thread");
@@ -261,7 +304,8 @@ public class BluetoothClient implements BluetoothClientInterface {
             }
             mmInStream = tmpIn;
             mmOutStream = tmpOut;
-            setState(STATE_CONNECTED);
+            mmAsciiDecoder = new AsciiLineDecoder(mCompactFraming ? CompactFrameDecoder.NEGOTIATION_ACK : null);
+            mmDecoder = mmAsciiDecoder;
         }
 
         public void run() {
@@ -274,16 +318,17 @@ public class BluetoothClient implements BluetoothClientInterface {
                 try {
                     // Read from the InputStream
                     bytes = mmInStream.read(buffer);
-                    String data = new String(buffer, US_ASCII);
-                    for (char ch : data.toCharArray()) {
-                        if (ch != DELIMITER) {
-                            mmMessageBuffer.append(ch);
-                        } else {
-                            String message = mmMessageBuffer.toString();
-                            // Send the obtained message to caller
-                            mHandler.obtainMessage(Constants.MESSAGE_INCOMING_MESSAGE, message)
-                                    .sendToTarget();
-                            mmMessageBuffer = new StringBuilder();
+                    if (bytes < 0) {
+                        throw new IOException("end of stream");
+                    }
+                    // only decode what was read, a partial frame stays in the decoder until the next read completes it.
+                    // Let the aggregator decide whether a frame is a response on its own or part of a bulk response
+                    int offset = 0;
+                    while (offset < bytes) {
+                        offset += mmDecoder.decode(buffer, offset, bytes - offset, mResponseAggregator);
+                        if (mmDecoder == mmAsciiDecoder && mmAsciiDecoder.hasSwitched()) {
+                            Log.i(TAG, "board acknowledged compact framing");
+                            mmDecoder = new CompactFrameDecoder();
                         }
                     }
                 } catch (IOException e) {
@@ -302,13 +347,21 @@ public class BluetoothClient implements BluetoothClientInterface {
          * Write bytes buffer to the ConnectedThread OutStream.
          *
          * @param buffer byte array to send via BT.
+         * @return false if the write failed and the connection was torn down.
          */
-        public void write(byte[] buffer) {
+        public boolean write(byte[] buffer) {
+            if (mmOutStream == null) {
+                // streams could not be obtained from the socket.
+                disconnect();
+                return false;
+            }
             try {
                 mmOutStream.write(buffer);
+                return true;
             } catch (IOException e) {
                 Log.e(TAG, "Exception during sendCommand", e);
                 disconnect();
+                return false;
             }
         }
 
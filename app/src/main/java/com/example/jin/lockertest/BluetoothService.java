@@ -0,0 +1,178 @@
+package com.example.jin.lockertest;
+
+import android.app.Service;
+import android.bluetooth.BluetoothDevice;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Message;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hosts the bluetooth connection outside of the Activity so it survives Activity recreation.
+ * <p>
+ * The service is started and bound by {@link MainActivity}. It keeps running while the Activity is
+ * recreated (e.g. on rotation), so a new Activity instance only has to bind again and finds the
+ * connection, its state and the charge scheduler as they were. The Activity stops the service when it finishes.
+ * <p>
+ * Messages from the client are handled here first (reconnect, charge scheduling), then forwarded to the
+ * attached UI handler. Messages arriving while no UI is attached are kept and delivered on attach.
+ */
+public class BluetoothService extends Service {
+    private static final String TAG = "BluetoothService";
+    private static final int MAX_PENDING_MESSAGES = 100;
+
+    private final IBinder mBinder = new LocalBinder();
+    private final List<Message> mPendingMessages = new ArrayList<>();
+    private BluetoothClientInterface mBluetoothClient;
+    private ChargeScheduler mChargeScheduler;
+    private Handler mUIHandler;
+
+    public class LocalBinder extends Binder {
+        public BluetoothService getService() {
+            return BluetoothService.this;
+        }
+    }
+
+    private final Handler mHandler = new Handler() {
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case Constants.MESSAGE_CONNECTION_LOST:
+                    // reconnect since connection is lost
+                    if (mBluetoothClient != null) {
+                        mBluetoothClient.connect();
+                    }
+                    if (mChargeScheduler != null) {
+                        mChargeScheduler.onConnectionLost();
+                    }
+                    break;
+                case Constants.MESSAGE_INCOMING_MESSAGE:
+                    if (mChargeScheduler != null) {
+                        mChargeScheduler.onResponse((String) msg.obj);
+                    }
+                    break;
+                case Constants.MESSAGE_INCOMING_RESPONSE:
+                    List<String> frames = (List<String>) msg.obj;
+                    if (mChargeScheduler != null) {
+                        mChargeScheduler.onResponse(frames.get(frames.size() - 1));
+                    }
+                    break;
+            }
+            forward(msg.what, msg.obj);
+        }
+    };
+
+    private final Runnable mChargeTick = new Runnable() {
+        @Override
+        public void run() {
+            if (mChargeScheduler == null)
+                return;
+            String command = mChargeScheduler.tick();
+            if (command != null) {
+                forward(Constants.MESSAGE_CHARGE_COMMAND_SENT, command);
+            }
+            mHandler.postDelayed(this, ChargeScheduler.TICK_INTERVAL_MS);
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        Log.d(TAG, "onCreate");
+        BluetoothClient client = new BluetoothClient(mHandler, MainActivity.TARGET_DEVICE_NAME,
+                MainActivity.USE_COMPACT_FRAMING);
+        client.getResponseAggregator().setBulkRule(ResponseAggregator.CompletionRule.forAllBoxes(MainActivity.BOX_COUNT));
+        mBluetoothClient = client;
+        mChargeScheduler = new ChargeScheduler(mBluetoothClient, ChargeScheduler.SYSTEM_CLOCK);
+        mBluetoothClient.getBluetoothBroadcastReceiver()
+                .safeRegister(this, new IntentFilter(BluetoothDevice.ACTION_ACL_DISCONNECTED));
+        mBluetoothClient.connect();
+        mHandler.post(mChargeTick);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // keep running until the Activity finishes, so the connection outlives Activity recreation.
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public void onDestroy() {
+        Log.d(TAG, "onDestroy");
+        mHandler.removeCallbacks(mChargeTick);
+        mBluetoothClient.disconnect();
+        mBluetoothClient.getBluetoothBroadcastReceiver().safeUnregister(this);
+        mBluetoothClient = null;
+        mChargeScheduler = null;
+        mUIHandler = null;
+        mPendingMessages.clear();
+        super.onDestroy();
+    }
+
+    public BluetoothClientInterface getBluetoothClient() {
+        return mBluetoothClient;
+    }
+
+    public ChargeScheduler getChargeScheduler() {
+        return mChargeScheduler;
+    }
+
+    /**
+     * connect again if the connection was dropped, no-op while connecting or connected.
+     */
+    public void ensureConnected() {
+        if (mBluetoothClient != null && mBluetoothClient.getState() == BluetoothClientInterface.STATE_NONE) {
+            mBluetoothClient.connect();
+        }
+    }
+
+    /**
+     * send a command to the board, keeping the charge scheduler informed about link usage.
+     */
+    public void sendCommand(String command) {
+        if (mBluetoothClient == null)
+            return;
+        mBluetoothClient.sendCommand(command);
+        mChargeScheduler.onCommandSent(command);
+    }
+
+    /**
+     * start forwarding client messages to the UI handler, delivering the ones received while detached first.
+     */
+    public void attach(Handler uiHandler) {
+        mUIHandler = uiHandler;
+        for (Message pending : mPendingMessages) {
+            mUIHandler.obtainMessage(pending.what, pending.obj).sendToTarget();
+            pending.recycle();
+        }
+        mPendingMessages.clear();
+    }
+
+    public void detach(Handler uiHandler) {
+        if (mUIHandler == uiHandler) {
+            mUIHandler = null;
+        }
+    }
+
+    private void forward(int what, Object obj) {
+        if (mUIHandler != null) {
+            mUIHandler.obtainMessage(what, obj).sendToTarget();
+            return;
+        }
+        if (mPendingMessages.size() >= MAX_PENDING_MESSAGES) {
+            mPendingMessages.remove(0).recycle();
+        }
+        mPendingMessages.add(Message.obtain(null, what, obj));
+    }
+}
@@ -0,0 +1,199 @@
+package com.example.jin.lockertest;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Decides when to issue the charging commands on top of a {@link BluetoothClientInterface}.
+ * <p>
+ * The board only exposes bank wide charging control: LOW turns charging on, HIGH turns it off.
+ * Callers request charging per box, the bank is charged as long as at least one box still needs it.
+ * Per box requests are turned into bank transitions as follows:
+ * * requests changing within {@link #BATCH_WINDOW_MS} are batched, only the settled state is sent,
+ * and nothing is sent if the bank ends up in the state it is already in.
+ * * at most one charging command is sent every {@link #MIN_COMMAND_INTERVAL_MS}.
+ * * no charging command is sent while any other command is waiting for its response, so it never
+ * interleaves with a door operation on the shared link. Outstanding commands are counted, so overlapping
+ * commands keep the link busy until each of them is answered or {@link #BUSY_TIMEOUT_MS} passed.
+ * <p>
+ * A LOW/HIGH sent by someone else (e.g. the manual CHARGE/DISCHARGE buttons) overrides the scheduler:
+ * it sends nothing until the box requests change again.
+ * <p>
+ * The scheduler does not keep its own timer, the owner is expected to call {@link #tick()} periodically.
+ * Time is read from a {@link Clock} so the scheduler can be driven by a virtual clock in tests.
+ */
+public class ChargeScheduler {
+    public static final String COMMAND_CHARGE = "LOW";
+    public static final String COMMAND_DISCHARGE = "HIGH";
+
+    public static final long TICK_INTERVAL_MS = 500;
+    public static final long BATCH_WINDOW_MS = 2000;
+    public static final long MIN_COMMAND_INTERVAL_MS = 10000;
+    // a door operation is answered once the door is closed again, which may take a while.
+    // safety reset in case a response is lost, counted from the last command sent.
+    public static final long BUSY_TIMEOUT_MS = 30000;
+
+    public interface Clock {
+        long now();
+    }
+
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long now() {
+            return SystemClock.elapsedRealtime();
+        }
+    };
+
+    private final BluetoothClientInterface mClient;
+    private final Clock mClock;
+    // box number -> time the charge request expires, 0 for no expiry.
+    private final Map<Integer, Long> mChargeRequests = new HashMap<>();
+    // last charging state sent to the board, null when unknown.
+    private Boolean mBankCharging;
+    private long mDemandChangedAt;
+    private long mLastCommandAt = -MIN_COMMAND_INTERVAL_MS;
+    // commands sent but not answered yet.
+    private int mPendingCommands;
+    private long mBusyUntil;
+    // a manual charging command was sent, hold off until the box requests change.
+    private boolean mManualOverride;
+
+    public ChargeScheduler(BluetoothClientInterface client, Clock clock) {
+        mClient = client;
+        mClock = clock;
+    }
+
+    /**
+     * request charging for a box until released.
+     */
+    public synchronized void requestCharge(int box) {
+        requestCharge(box, 0);
+    }
+
+    /**
+     * request charging for a box for a limited time.
+     *
+     * @param box            box number
+     * @param durationMillis how long to charge, 0 to charge until released.
+     */
+    public synchronized void requestCharge(int box, long durationMillis) {
+        boolean wasCharging = isChargeDemanded();
+        mChargeRequests.put(box, durationMillis > 0 ? mClock.now() + durationMillis : 0);
+        mManualOverride = false;
+        onDemandUpdated(wasCharging);
+    }
+
+    public synchronized void releaseCharge(int box) {
+        boolean wasCharging = isChargeDemanded();
+        mChargeRequests.remove(box);
+        mManualOverride = false;
+        onDemandUpdated(wasCharging);
+    }
+
+    public synchronized boolean isChargeRequested(int box) {
+        return mChargeRequests.containsKey(box);
+    }
+
+    /**
+     * @return last charging state sent to the board, null if no charging command was sent yet.
+     */
+    public synchronized Boolean getBankCharging() {
+        return mBankCharging;
+    }
+
+    /**
+     * to be called for every command sent to the board by others than the scheduler.
+     * A charging command sent this way overrides the scheduler until the box requests change.
+     */
+    public synchronized void onCommandSent(String command) {
+        long now = mClock.now();
+        if (COMMAND_CHARGE.equals(command) || COMMAND_DISCHARGE.equals(command)) {
+            onChargeCommandSent(command, now);
+            mManualOverride = true;
+        } else {
+            mPendingCommands++;
+            mBusyUntil = now + BUSY_TIMEOUT_MS;
+        }
+    }
+
+    /**
+     * to be called for every response from the board. Any response other than the acknowledge completes
+     * one pending command, the link is free once all of them are completed.
+     */
+    public synchronized void onResponse(String message) {
+        if (!ResponseAggregator.ACKNOWLEDGE.equals(message) && mPendingCommands > 0) {
+            mPendingCommands--;
+        }
+    }
+
+    /**
+     * the board state is unknown after a reconnect, so the next tick sends the desired state again.
+     */
+    public synchronized void onConnectionLost() {
+        mBankCharging = null;
+        mPendingCommands = 0;
+    }
+
+    /**
+     * expire timed charge requests and send a charging command if one is due.
+     *
+     * @return the command sent, or null if nothing was sent.
+     */
+    public synchronized String tick() {
+        long now = mClock.now();
+        expireRequests(now);
+        if (mPendingCommands > 0 && now >= mBusyUntil) {
+            // responses got lost, don't block charging forever.
+            mPendingCommands = 0;
+        }
+        if (mManualOverride)
+            return null;
+        boolean desired = isChargeDemanded();
+        if (mBankCharging != null && mBankCharging == desired)
+            return null;
+        if (mBankCharging == null && !desired)
+            // nothing was requested yet, leave the board alone.
+            return null;
+        if (now - mDemandChangedAt < BATCH_WINDOW_MS
+                || now - mLastCommandAt < MIN_COMMAND_INTERVAL_MS
+                || mPendingCommands > 0)
+            return null;
+        if (mClient.getState() != BluetoothClientInterface.STATE_CONNECTED)
+            return null;
+        String command = desired ? COMMAND_CHARGE : COMMAND_DISCHARGE;
+        mClient.sendCommand(command);
+        onChargeCommandSent(command, now);
+        return command;
+    }
+
+    private void onChargeCommandSent(String command, long now) {
+        mBankCharging = COMMAND_CHARGE.equals(command);
+        mLastCommandAt = now;
+    }
+
+    private boolean isChargeDemanded() {
+        return !mChargeRequests.isEmpty();
+    }
+
+    private void onDemandUpdated(boolean wasCharging) {
+        if (wasCharging != isChargeDemanded()) {
+            mDemandChangedAt = mClock.now();
+        }
+    }
+
+    private void expireRequests(long now) {
+        boolean wasCharging = isChargeDemanded();
+        Iterator<Map.Entry<Integer, Long>> iterator = mChargeRequests.entrySet().iterator();
+        while (iterator.hasNext()) {
+            long expiry = iterator.next().getValue();
+            if (expiry > 0 && expiry <= now) {
+                iterator.remove();
+                mManualOverride = false;
+            }
+        }
+        onDemandUpdated(wasCharging);
+    }
+}
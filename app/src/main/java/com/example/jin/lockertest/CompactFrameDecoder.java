@@ -0,0 +1,82 @@
+package com.example.jin.lockertest;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes the compact binary framing the board switches to after acknowledging {@link #NEGOTIATION_REQUEST}.
+ * Boards that don't support it don't acknowledge, and the connection stays on the ASCII lines.
+ * <p>
+ * Every frame is: SYNC(0xA5) TYPE LENGTH PAYLOAD[LENGTH]
+ * * TYPE_TEXT: payload is one ASCII line without delimiter, same as an ASCII mode line.
+ * * TYPE_DOOR_STATES / TYPE_EMPTY_STATES: payload is FIRST_BOX COUNT BITS[(COUNT + 7) / 8], one bit per box,
+ * least significant bit first. A set bit means the door is open / the box is empty.
+ * <p>
+ * A 40 box report takes 10 bytes instead of 40 lines. It is expanded to the same per box lines the ASCII
+ * mode reports ("O01"/"C01" for door, "E01"/"F01" for empty state) and handed over as one snapshot.
+ * Bytes outside of a frame are skipped until the next SYNC byte.
+ */
+public class CompactFrameDecoder implements FrameDecoder {
+    public static final String NEGOTIATION_REQUEST = "PBIN";
+    public static final String NEGOTIATION_ACK = "PBIN OK";
+
+    public static final int SYNC = 0xA5;
+    public static final int TYPE_TEXT = 0x01;
+    public static final int TYPE_DOOR_STATES = 0x02;
+    public static final int TYPE_EMPTY_STATES = 0x03;
+    private static final int HEADER_LENGTH = 3;
+    private static final Charset US_ASCII = Charset.forName(BluetoothClient.US_ASCII);
+
+    private final byte[] mFrame = new byte[HEADER_LENGTH + 0xFF];
+    private int mFrameLength = 0;
+
+    @Override
+    public int decode(byte[] buffer, int offset, int length, Sink sink) {
+        for (int i = offset; i < offset + length; i++) {
+            if (mFrameLength == 0 && (buffer[i] & 0xFF) != SYNC) {
+                continue;
+            }
+            mFrame[mFrameLength++] = buffer[i];
+            if (mFrameLength >= HEADER_LENGTH && mFrameLength == HEADER_LENGTH + (mFrame[2] & 0xFF)) {
+                dispatch(sink);
+                mFrameLength = 0;
+            }
+        }
+        return length;
+    }
+
+    private void dispatch(Sink sink) {
+        int type = mFrame[1] & 0xFF;
+        int payloadLength = mFrame[2] & 0xFF;
+        switch (type) {
+            case TYPE_TEXT:
+                sink.onFrame(new String(mFrame, HEADER_LENGTH, payloadLength, US_ASCII));
+                break;
+            case TYPE_DOOR_STATES:
+                dispatchBoxStates(sink, payloadLength, 'O', 'C');
+                break;
+            case TYPE_EMPTY_STATES:
+                dispatchBoxStates(sink, payloadLength, 'E', 'F');
+                break;
+            default:
+                // unknown frame type, ignore it so newer firmware doesn't break the client.
+                break;
+        }
+    }
+
+    private void dispatchBoxStates(Sink sink, int payloadLength, char setFlag, char clearFlag) {
+        if (payloadLength < 2)
+            return;
+        int firstBox = mFrame[HEADER_LENGTH] & 0xFF;
+        int count = mFrame[HEADER_LENGTH + 1] & 0xFF;
+        if (payloadLength < 2 + (count + 7) / 8)
+            return;
+        List<String> frames = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            boolean set = (mFrame[HEADER_LENGTH + 2 + i / 8] & (1 << (i % 8))) != 0;
+            frames.add(String.format("%c%02d", set ? setFlag : clearFlag, firstBox + i));
+        }
+        sink.onSnapshot(frames);
+    }
+}
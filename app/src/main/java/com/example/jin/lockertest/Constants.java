@@ -24,4 +24,8 @@ public interface Constants {
     int MESSAGE_CONNECTED = 1;
     int MESSAGE_CONNECTION_LOST = 2;
     int MESSAGE_INCOMING_MESSAGE = 3;
+    // obj is a List<String> holding all frames of a multi-frame response, see ResponseAggregator
+    int MESSAGE_INCOMING_RESPONSE = 4;
+    // obj is the LOW/HIGH command sent by ChargeScheduler
+    int MESSAGE_CHARGE_COMMAND_SENT = 5;
 }
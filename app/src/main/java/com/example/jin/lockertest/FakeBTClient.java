@@ -17,11 +17,13 @@ public class FakeBTClient implements BluetoothClientInterface {
     private final String Tag = "FakeBTClient";
     private final Handler mHandler;
     private final SafeBroadcastReceiver mBluetoothBroadcastReceiver;
+    private final ResponseAggregator mResponseAggregator;
     private int mState;
 
     public FakeBTClient(Handler handler) {
         mState = STATE_NONE;
         mHandler = handler;
+        mResponseAggregator = new ResponseAggregator(handler);
         mBluetoothBroadcastReceiver = new SafeBroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
@@ -44,6 +46,10 @@ public class FakeBTClient implements BluetoothClientInterface {
         return mBluetoothBroadcastReceiver;
     }
 
+    public ResponseAggregator getResponseAggregator() {
+        return mResponseAggregator;
+    }
+
     void setState(int state) {
         if (mState == STATE_CONNECTED && state != STATE_CONNECTED) {
             // if the state was connected and it changed, notify the caller the connect was lost so that
@@ -87,32 +93,45 @@ public class FakeBTClient implements BluetoothClientInterface {
 
     @Override
     public void disconnect() {
+        mResponseAggregator.reset();
         setState(STATE_NONE);
     }
 
     @Override
     public void sendCommand(final String command) {
         Log.d(Tag, String.format("Sending Command: %s", command));
+        mResponseAggregator.onCommandSent(command);
         AsyncTask<Void, Void, Void> delayed = new AsyncTask<Void, Void, Void>() {
             @Override
             protected Void doInBackground(Void... voids) {
                 try {
                     Thread.sleep(500);
                     //simulate acknowledge.
-                    mHandler.obtainMessage(Constants.MESSAGE_INCOMING_MESSAGE, "A").sendToTarget();
+                    mResponseAggregator.onFrame(ResponseAggregator.ACKNOWLEDGE);
+                    if (ResponseAggregator.isBulkQuery(command)) {
+                        //simulate one line per box for all-boxes query, same lines as CompactFrameDecoder expands to:
+                        //O/C for open/closed door, E/F for empty/full box.
+                        boolean doorQuery = command.equals("D");
+                        for (int box = 1; box <= ResponseAggregator.DEFAULT_BOX_COUNT; box++) {
+                            boolean set = (Math.random() * 10) > 6;
+                            String flag = doorQuery ? (set ? "O" : "C") : (set ? "E" : "F");
+                            mResponseAggregator.onFrame(String.format("%s%02d", flag, box));
+                        }
+                        return null;
+                    }
                     Thread.sleep(5000);
                     if (command.endsWith("T")) {
                         String box = command.substring(1, 3);
                         //simulate door lock
                         //40% chance of checkin with nothing.
                         String emptyFlag = (Math.random() * 10) > 6 ? "E" : "F";
-                        mHandler.obtainMessage(Constants.MESSAGE_INCOMING_MESSAGE, String.format("%s%2s", emptyFlag, box)).sendToTarget();
+                        mResponseAggregator.onFrame(String.format("%s%2s", emptyFlag, box));
                     }else if(command.endsWith("R")){
                         String box = command.substring(1, 3);
                         //simulate door lock
                         //40% chance of checkin with nothing.
                         String emptyFlag = (Math.random() * 10) > 6 ? "F" : "E";
-                        mHandler.obtainMessage(Constants.MESSAGE_INCOMING_MESSAGE, String.format("%s%2s", emptyFlag, box)).sendToTarget();
+                        mResponseAggregator.onFrame(String.format("%s%2s", emptyFlag, box));
                     }
                 } catch (InterruptedException e) {
                     e.printStackTrace();
@@ -0,0 +1,30 @@
+package com.example.jin.lockertest;
+
+import java.util.List;
+
+/**
+ * Turns the raw bytes read from the board into frames.
+ * Decoders keep partial frames between calls, so a frame may be split across any number of reads.
+ */
+public interface FrameDecoder {
+
+    /**
+     * Receives the decoded frames.
+     */
+    interface Sink {
+        /**
+         * @param frame a single line from the board.
+         */
+        void onFrame(String frame);
+
+        /**
+         * @param frames a complete multi-frame response decoded in one go, e.g. a bank snapshot.
+         */
+        void onSnapshot(List<String> frames);
+    }
+
+    /**
+     * @return number of bytes consumed, less than length if the remaining bytes are meant for another decoder.
+     */
+    int decode(byte[] buffer, int offset, int length, Sink sink);
+}
@@ -1,10 +1,13 @@
 package com.example.jin.lockertest;
 
-import android.bluetooth.BluetoothDevice;
-import android.content.IntentFilter;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
 import android.graphics.Color;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Message;
 import android.support.v7.app.AppCompatActivity;
 import android.text.method.ScrollingMovementMethod;
@@ -13,23 +16,26 @@ import android.view.View;
 import android.widget.Button;
 import android.widget.TextView;
 
+import java.util.List;
+
 
 public class MainActivity extends AppCompatActivity {
     //Make sure the device name is correct!
     public static final String TARGET_DEVICE_NAME = "Nexus 7";
+    //Enable when the board firmware supports compact framing, it falls back to ASCII lines otherwise.
+    public static final boolean USE_COMPACT_FRAMING = false;
+    //Number of boxes answering the all-boxes door/empty query, a bulk response is complete once all of them reported.
+    public static final int BOX_COUNT = ResponseAggregator.DEFAULT_BOX_COUNT;
     TextView doorNumberText, logText, statusText;
     Button checkInButton, checkOutButton, doorButton, emptyButton, clearButton;
 
-    private BluetoothClientInterface mBluetoothClient;
+    private BluetoothService mBluetoothService;
     private final Handler mHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case Constants.MESSAGE_CONNECTION_LOST:
-                    // reconnect since connection is lost
-                    if (mBluetoothClient != null) {
-                        mBluetoothClient.connect();
-                    }
+                    // the service reconnects by itself
                     setUIConnected(false);
                     break;
                 case Constants.MESSAGE_CONNECTED:
@@ -39,10 +45,42 @@ public class MainActivity extends AppCompatActivity {
                     String message = (String) msg.obj;
                     tvAppend(logText, String.format("Message received: %s",  message.concat("\n")));
                     break;
+                case Constants.MESSAGE_INCOMING_RESPONSE:
+                    //one UI update for the whole multi-frame response.
+                    List<String> frames = (List<String>) msg.obj;
+                    StringBuilder builder = new StringBuilder();
+                    for (String frame : frames) {
+                        builder.append(String.format("Message received: %s\n", frame));
+                    }
+                    tvAppend(logText, builder);
+                    break;
+                case Constants.MESSAGE_CHARGE_COMMAND_SENT:
+                    tvAppend(logText, String.format("\nCharge command sent: %s \n", msg.obj));
+                    break;
             }
         }
     };
 
+    /**
+     * the connection lives in BluetoothService, re-attaching after Activity recreation only rebinds
+     * and picks up the current connection state, no reconnect needed.
+     */
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            mBluetoothService = ((BluetoothService.LocalBinder) binder).getService();
+            mBluetoothService.attach(mHandler);
+            mBluetoothService.ensureConnected();
+            setUIConnected(isBtConnected());
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mBluetoothService = null;
+            setUIConnected(false);
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -59,30 +97,38 @@ public class MainActivity extends AppCompatActivity {
 
         setUIConnected(false);
 
-        mBluetoothClient = new BluetoothClient(mHandler, TARGET_DEVICE_NAME);
+        // started as well as bound so the service outlives this Activity instance when it is recreated.
+        Intent serviceIntent = new Intent(this, BluetoothService.class);
+        startService(serviceIntent);
+        bindService(serviceIntent, mServiceConnection, Context.BIND_AUTO_CREATE);
     }
 
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        mBluetoothClient.disconnect();
-        mBluetoothClient.getBluetoothBroadcastReceiver().safeUnregister(this);
-        mBluetoothClient = null;
+        if (mBluetoothService != null) {
+            mBluetoothService.detach(mHandler);
+            mBluetoothService = null;
+        }
+        unbindService(mServiceConnection);
+        if (isFinishing()) {
+            // leaving the app for good, drop the connection.
+            stopService(new Intent(this, BluetoothService.class));
+        }
     }
 
     @Override
     protected void onResume() {
         super.onResume();
-        if (mBluetoothClient != null && mBluetoothClient.getState() == BluetoothClient.STATE_NONE) {
-            mBluetoothClient.connect();
-            mBluetoothClient.getBluetoothBroadcastReceiver()
-                    .safeRegister(this, new IntentFilter(BluetoothDevice.ACTION_ACL_DISCONNECTED));
+        if (mBluetoothService != null) {
+            mBluetoothService.ensureConnected();
         }
     }
 
     public boolean isBtConnected() {
-        return mBluetoothClient != null && mBluetoothClient.getState() == BluetoothClientInterface.STATE_CONNECTED;
+        return mBluetoothService != null && mBluetoothService.getBluetoothClient() != null
+                && mBluetoothService.getBluetoothClient().getState() == BluetoothClientInterface.STATE_CONNECTED;
     }
 
     public void setUIConnected(boolean connected) {
@@ -110,7 +156,7 @@ public class MainActivity extends AppCompatActivity {
         if (isBtConnected()) {
             //trim does the magic when door number is not specified for door/empty command.
             String command = String.format(commandFormatter, doorNumberText.getText()).trim();
-            mBluetoothClient.sendCommand(command);
+            mBluetoothService.sendCommand(command);
 //            serialPort.write(command.getBytes(Charset.forName("ASCII")));
             tvAppend(logText, String.format("\nCommand sent: %s \n", command));
         }
@@ -136,14 +182,55 @@ public class MainActivity extends AppCompatActivity {
         logText.setText("");
     }
 
+    /**
+     * with a door number, request charging of that box and let the scheduler issue LOW when due.
+     * without door number, send LOW right away.
+     */
     public void onChargeClicked(View view) {
+        Integer box = getDoorNumber();
+        if (box != null) {
+            ChargeScheduler scheduler = getChargeScheduler();
+            if (scheduler != null) {
+                Log.d("CHARGE", "request box " + box);
+                scheduler.requestCharge(box);
+            }
+            return;
+        }
         Log.d("CHARGE", "LOW");
-        sendCommand("LOW");
+        sendCommand(ChargeScheduler.COMMAND_CHARGE);
     }
 
+    /**
+     * with a door number, release charging of that box and let the scheduler issue HIGH when due.
+     * without door number, send HIGH right away.
+     */
     public void onDischargeClicked(View view) {
+        Integer box = getDoorNumber();
+        if (box != null) {
+            ChargeScheduler scheduler = getChargeScheduler();
+            if (scheduler != null) {
+                Log.d("CHARGE", "release box " + box);
+                scheduler.releaseCharge(box);
+            }
+            return;
+        }
         Log.d("CHARGE", "HIGH");
-        sendCommand("HIGH");
+        sendCommand(ChargeScheduler.COMMAND_DISCHARGE);
+    }
+
+    /**
+     * @return the service's charge scheduler, null until the service is bound.
+     */
+    private ChargeScheduler getChargeScheduler() {
+        return mBluetoothService != null ? mBluetoothService.getChargeScheduler() : null;
+    }
+
+    private Integer getDoorNumber() {
+        try {
+            return Integer.parseInt(doorNumberText.getText().toString().trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
     }
 }
 
@@ -0,0 +1,196 @@
+package com.example.jin.lockertest;
+
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Groups the frames decoded from the board into logical responses.
+ * <p>
+ * Most commands are answered by a single line, which is forwarded as {@link Constants#MESSAGE_INCOMING_MESSAGE}.
+ * The all-boxes "D"/"E" queries are answered by one line per box though, so once such a query is sent the
+ * following frames are collected and dispatched together as one {@link Constants#MESSAGE_INCOMING_RESPONSE}
+ * carrying a List of frames. The group is complete when any rule of the active {@link CompletionRule} is met:
+ * * the expected number of frames has arrived
+ * * the terminator frame has arrived (the terminator itself is not part of the response)
+ * * no frame has arrived for the idle timeout since the last collected frame
+ * * no frame has arrived at all for the first frame timeout after the command was sent
+ * The first frame timeout is longer as it covers the round trip to the board and the acknowledge.
+ * <p>
+ * The acknowledge frame is always forwarded on its own as it is not part of the bulk response.
+ * Decoders that receive a whole bulk response at once hand it over as a snapshot, which is dispatched as is.
+ */
+public class ResponseAggregator implements FrameDecoder.Sink {
+    public static final String ACKNOWLEDGE = "A";
+    public static final int DEFAULT_BOX_COUNT = 40;
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 500;
+    public static final long DEFAULT_FIRST_FRAME_TIMEOUT_MS = 3000;
+
+    /**
+     * Delivers the aggregator's messages and timeouts, backed by a {@link Handler} on the device.
+     */
+    public interface Dispatcher {
+        void dispatch(int what, Object obj);
+
+        void schedule(Runnable runnable, long delayMillis);
+
+        void cancel(Runnable runnable);
+    }
+
+    /**
+     * Describes when a multi-frame response is complete. A value of 0 (or null terminator) disables that rule.
+     */
+    public static class CompletionRule {
+        public final int expectedFrames;
+        public final String terminator;
+        public final long idleTimeoutMillis;
+        public final long firstFrameTimeoutMillis;
+
+        public CompletionRule(int expectedFrames, String terminator, long idleTimeoutMillis) {
+            this(expectedFrames, terminator, idleTimeoutMillis, DEFAULT_FIRST_FRAME_TIMEOUT_MS);
+        }
+
+        public CompletionRule(int expectedFrames, String terminator, long idleTimeoutMillis,
+                              long firstFrameTimeoutMillis) {
+            this.expectedFrames = expectedFrames;
+            this.terminator = terminator;
+            this.idleTimeoutMillis = idleTimeoutMillis;
+            this.firstFrameTimeoutMillis = firstFrameTimeoutMillis;
+        }
+
+        public static CompletionRule forAllBoxes(int boxCount) {
+            return new CompletionRule(boxCount, null, DEFAULT_IDLE_TIMEOUT_MS);
+        }
+    }
+
+    private final Dispatcher mDispatcher;
+    private CompletionRule mBulkRule = CompletionRule.forAllBoxes(DEFAULT_BOX_COUNT);
+    private CompletionRule mActiveRule;
+    private List<String> mFrames = new ArrayList<>();
+
+    private final Runnable mTimeout = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public ResponseAggregator(final Handler handler) {
+        this(new Dispatcher() {
+            @Override
+            public void dispatch(int what, Object obj) {
+                handler.obtainMessage(what, obj).sendToTarget();
+            }
+
+            @Override
+            public void schedule(Runnable runnable, long delayMillis) {
+                handler.postDelayed(runnable, delayMillis);
+            }
+
+            @Override
+            public void cancel(Runnable runnable) {
+                handler.removeCallbacks(runnable);
+            }
+        });
+    }
+
+    public ResponseAggregator(Dispatcher dispatcher) {
+        mDispatcher = dispatcher;
+    }
+
+    public synchronized void setBulkRule(CompletionRule rule) {
+        mBulkRule = rule;
+    }
+
+    /**
+     * all-boxes queries are the door/empty commands without door number.
+     */
+    public static boolean isBulkQuery(String command) {
+        return "D".equals(command) || "E".equals(command);
+    }
+
+    /**
+     * to be called whenever a command goes out, arms the bulk rule if the command is answered by multiple frames.
+     *
+     * @param command command sent to the board, without delimiter.
+     */
+    public synchronized void onCommandSent(String command) {
+        if (isBulkQuery(command)) {
+            expect(mBulkRule);
+        }
+    }
+
+    /**
+     * start collecting frames until the rule is met. Frames collected for a previous rule are dispatched first.
+     */
+    public synchronized void expect(CompletionRule rule) {
+        flush();
+        mActiveRule = rule;
+        scheduleTimeout(rule.firstFrameTimeoutMillis);
+    }
+
+    /**
+     * feed a decoded frame into the aggregator.
+     *
+     * @param frame a line received from the board, without delimiter.
+     */
+    @Override
+    public synchronized void onFrame(String frame) {
+        if (mActiveRule == null || ACKNOWLEDGE.equals(frame)) {
+            // the acknowledge leaves the first frame timeout running, the bulk lines are still to come.
+            mDispatcher.dispatch(Constants.MESSAGE_INCOMING_MESSAGE, frame);
+            return;
+        }
+        if (mActiveRule.terminator != null && mActiveRule.terminator.equals(frame)) {
+            flush();
+            return;
+        }
+        mFrames.add(frame);
+        if (mActiveRule.expectedFrames > 0 && mFrames.size() >= mActiveRule.expectedFrames) {
+            flush();
+        } else {
+            scheduleTimeout(mActiveRule.idleTimeoutMillis);
+        }
+    }
+
+    /**
+     * dispatch a response that arrived complete, it satisfies the pending bulk rule if any.
+     *
+     * @param frames all frames of the response.
+     */
+    @Override
+    public synchronized void onSnapshot(List<String> frames) {
+        flush();
+        mDispatcher.dispatch(Constants.MESSAGE_INCOMING_RESPONSE, Collections.unmodifiableList(frames));
+    }
+
+    /**
+     * dispatch whatever has been collected so far and stop collecting.
+     */
+    public synchronized void flush() {
+        mDispatcher.cancel(mTimeout);
+        mActiveRule = null;
+        if (mFrames.isEmpty())
+            return;
+        mDispatcher.dispatch(Constants.MESSAGE_INCOMING_RESPONSE, Collections.unmodifiableList(mFrames));
+        mFrames = new ArrayList<>();
+    }
+
+    /**
+     * drop collected frames without dispatching them, e.g. when the connection is lost.
+     */
+    public synchronized void reset() {
+        mDispatcher.cancel(mTimeout);
+        mActiveRule = null;
+        mFrames = new ArrayList<>();
+    }
+
+    private void scheduleTimeout(long delayMillis) {
+        mDispatcher.cancel(mTimeout);
+        if (delayMillis > 0) {
+            mDispatcher.schedule(mTimeout, delayMillis);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.example.jin.lockertest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives the {@link ChargeScheduler} against a simulated board with a virtual clock.
+ */
+public class ChargeSchedulerTest {
+    private VirtualClock clock;
+    private SimulatedBoard board;
+    private ChargeScheduler scheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        clock = new VirtualClock();
+        board = new SimulatedBoard();
+        scheduler = new ChargeScheduler(board, clock);
+    }
+
+    @Test
+    public void batchesRequestsIntoOneCommand() throws Exception {
+        for (int box = 1; box <= 10; box++) {
+            scheduler.requestCharge(box);
+            advance(100);
+        }
+        advance(ChargeScheduler.BATCH_WINDOW_MS);
+        assertEquals(1, board.commands.size());
+        assertEquals(ChargeScheduler.COMMAND_CHARGE, board.commands.get(0));
+        assertTrue(scheduler.getBankCharging());
+    }
+
+    @Test
+    public void sendsNothingWhenDemandFlipsBackWithinBatchWindow() throws Exception {
+        scheduler.requestCharge(1);
+        advance(ChargeScheduler.BATCH_WINDOW_MS + ChargeScheduler.MIN_COMMAND_INTERVAL_MS);
+        board.commands.clear();
+
+        scheduler.releaseCharge(1);
+        advance(ChargeScheduler.TICK_INTERVAL_MS);
+        scheduler.requestCharge(2);
+        advance(ChargeScheduler.BATCH_WINDOW_MS * 2);
+        assertTrue(board.commands.isEmpty());
+    }
+
+    @Test
+    public void rateLimitsTransitions() throws Exception {
+        scheduler.requestCharge(1);
+        advance(ChargeScheduler.BATCH_WINDOW_MS);
+        assertEquals(1, board.commands.size());
+
+        scheduler.releaseCharge(1);
+        advance(ChargeScheduler.BATCH_WINDOW_MS);
+        assertEquals(1, board.commands.size());
+
+        advance(ChargeScheduler.MIN_COMMAND_INTERVAL_MS);
+        assertEquals(2, board.commands.size());
+        assertEquals(ChargeScheduler.COMMAND_DISCHARGE, board.commands.get(1));
+    }
+
+    @Test
+    public void waitsForDoorOperationToComplete() throws Exception {
+        board.sendCommand("O01T");
+        scheduler.onCommandSent("O01T");
+        scheduler.requestCharge(1);
+        advance(ChargeScheduler.BATCH_WINDOW_MS);
+        scheduler.onResponse(ResponseAggregator.ACKNOWLEDGE);
+        advance(ChargeScheduler.BATCH_WINDOW_MS);
+        assertEquals(1, board.commands.size());
+
+        scheduler.onResponse("F01");
+        advance(ChargeScheduler.TICK_INTERVAL_MS);
+        assertEquals(2, board.commands.size());
+        assertEquals(ChargeScheduler.COMMAND_CHARGE, board.commands.get(1));
+    }
+
+    @Test
+    public void waitsForOverlappingCommandsToComplete() throws Exception {
+        board.sendCommand("O01T");
+        scheduler.onCommandSent("O01T");
+        scheduler.onResponse(ResponseAggregator.ACKNOWLEDGE);
+        board.sendCommand("D02");
+        scheduler.onCommandSent("D02");
+        scheduler.onResponse("C02");
+        scheduler.requestCharge(3);
+        advance(ChargeScheduler.BATCH_WINDOW_MS * 2);
+        // check-in still pending, door 1 open.
+        assertEquals(2, board.commands.size());
+
+        scheduler.onResponse("F01");
+        advance(ChargeScheduler.TICK_INTERVAL_MS);
+        assertEquals(3, board.commands.size());
+        assertEquals(ChargeScheduler.COMMAND_CHARGE, board.commands.get(2));
+    }
+
+    @Test
+    public void busyTimeoutReleasesLostResponse() throws Exception {
+        board.sendCommand("O01T");
+        scheduler.onCommandSent("O01T");
+        scheduler.requestCharge(1);
+        advance(ChargeScheduler.BUSY_TIMEOUT_MS - ChargeScheduler.TICK_INTERVAL_MS);
+        assertEquals(1, board.commands.size());
+
+        advance(ChargeScheduler.TICK_INTERVAL_MS);
+        assertEquals(2, board.commands.size());
+        assertEquals(ChargeScheduler.COMMAND_CHARGE, board.commands.get(1));
+    }
+
+    @Test
+    public void releasesTimedRequest() throws Exception {
+        scheduler.requestCharge(1, 60000);
+        advance(60000);
+        assertFalse(scheduler.isChargeRequested(1));
+        advance(ChargeScheduler.BATCH_WINDOW_MS);
+        assertEquals(2, board.commands.size());
+        assertEquals(ChargeScheduler.COMMAND_DISCHARGE, board.commands.get(1));
+    }
+
+    @Test
+    public void resendsStateAfterReconnect() throws Exception {
+        scheduler.requestCharge(1);
+        advance(ChargeScheduler.BATCH_WINDOW_MS + ChargeScheduler.MIN_COMMAND_INTERVAL_MS);
+        assertEquals(1, board.commands.size());
+
+        board.state = BluetoothClientInterface.STATE_NONE;
+        scheduler.onConnectionLost();
+        advance(ChargeScheduler.TICK_INTERVAL_MS);
+        assertEquals(1, board.commands.size());
+
+        board.state = BluetoothClientInterface.STATE_CONNECTED;
+        advance(ChargeScheduler.TICK_INTERVAL_MS);
+        assertEquals(2, board.commands.size());
+        assertEquals(ChargeScheduler.COMMAND_CHARGE, board.commands.get(1));
+    }
+
+    @Test
+    public void manualCommandIsNotReverted() throws Exception {
+        manualCommand(ChargeScheduler.COMMAND_CHARGE);
+        advance(ChargeScheduler.BATCH_WINDOW_MS + ChargeScheduler.MIN_COMMAND_INTERVAL_MS * 3);
+        assertEquals(Arrays.asList(ChargeScheduler.COMMAND_CHARGE), board.commands);
+        assertTrue(scheduler.getBankCharging());
+    }
+
+    @Test
+    public void manualOverrideHoldsUntilRequestsChange() throws Exception {
+        scheduler.requestCharge(1);
+        advance(ChargeScheduler.BATCH_WINDOW_MS);
+        manualCommand(ChargeScheduler.COMMAND_DISCHARGE);
+        advance(ChargeScheduler.MIN_COMMAND_INTERVAL_MS * 3);
+        assertEquals(Arrays.asList(ChargeScheduler.COMMAND_CHARGE, ChargeScheduler.COMMAND_DISCHARGE),
+                board.commands);
+
+        scheduler.requestCharge(2);
+        advance(ChargeScheduler.TICK_INTERVAL_MS);
+        assertEquals(3, board.commands.size());
+        assertEquals(ChargeScheduler.COMMAND_CHARGE, board.commands.get(2));
+    }
+
+    /**
+     * send a charging command the way the CHARGE/DISCHARGE buttons do without door number.
+     */
+    private void manualCommand(String command) {
+        board.sendCommand(command);
+        scheduler.onCommandSent(command);
+    }
+
+    /**
+     * move the virtual clock forward, ticking the scheduler the way MainActivity does.
+     */
+    private void advance(long millis) {
+        long end = clock.time + millis;
+        while (clock.time < end) {
+            clock.time = Math.min(end, clock.time + ChargeScheduler.TICK_INTERVAL_MS);
+            scheduler.tick();
+        }
+    }
+
+    private static class VirtualClock implements ChargeScheduler.Clock {
+        long time;
+
+        @Override
+        public long now() {
+            return time;
+        }
+    }
+
+    private static class SimulatedBoard implements BluetoothClientInterface {
+        final List<String> commands = new ArrayList<>();
+        int state = STATE_CONNECTED;
+
+        @Override
+        public int getState() {
+            return state;
+        }
+
+        @Override
+        public SafeBroadcastReceiver getBluetoothBroadcastReceiver() {
+            return null;
+        }
+
+        @Override
+        public boolean connect() {
+            state = STATE_CONNECTED;
+            return true;
+        }
+
+        @Override
+        public void disconnect() {
+            state = STATE_NONE;
+        }
+
+        @Override
+        public void sendCommand(String command) {
+            commands.add(command);
+        }
+    }
+}
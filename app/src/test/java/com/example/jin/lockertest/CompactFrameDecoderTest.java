@@ -0,0 +1,139 @@
+package com.example.jin.lockertest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds byte streams through the ASCII and compact frame decoders.
+ */
+public class CompactFrameDecoderTest {
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    private RecordingSink sink;
+
+    @Before
+    public void setUp() throws Exception {
+        sink = new RecordingSink();
+    }
+
+    @Test
+    public void asciiLineSplitAcrossReads() throws Exception {
+        AsciiLineDecoder decoder = new AsciiLineDecoder();
+        byte[] data = "A\r\nE0".getBytes(US_ASCII);
+        assertEquals(data.length, decoder.decode(data, 0, data.length, sink));
+        data = "1\n".getBytes(US_ASCII);
+        decoder.decode(data, 0, data.length, sink);
+        assertEquals(Arrays.asList("A", "E01"), sink.frames);
+    }
+
+    @Test
+    public void asciiDecoderStopsAfterNegotiationAck() throws Exception {
+        AsciiLineDecoder decoder = new AsciiLineDecoder(CompactFrameDecoder.NEGOTIATION_ACK);
+        byte[] ack = (CompactFrameDecoder.NEGOTIATION_ACK + "\n").getBytes(US_ASCII);
+        byte[] data = concat(ack, textFrame("A"));
+        int consumed = decoder.decode(data, 0, data.length, sink);
+        assertEquals(ack.length, consumed);
+        assertTrue(decoder.hasSwitched());
+        assertTrue(sink.frames.isEmpty());
+
+        new CompactFrameDecoder().decode(data, consumed, data.length - consumed, sink);
+        assertEquals(Arrays.asList("A"), sink.frames);
+    }
+
+    @Test
+    public void decodesTextFrame() throws Exception {
+        byte[] data = textFrame("F07");
+        new CompactFrameDecoder().decode(data, 0, data.length, sink);
+        assertEquals(Arrays.asList("F07"), sink.frames);
+    }
+
+    @Test
+    public void bitPackedEmptyStatesSplitAcrossReads() throws Exception {
+        // boxes 1..10, box 1, 3 and 10 empty.
+        byte[] data = frame(CompactFrameDecoder.TYPE_EMPTY_STATES, new byte[]{1, 10, 0x05, 0x02});
+        CompactFrameDecoder decoder = new CompactFrameDecoder();
+        decoder.decode(data, 0, 4, sink);
+        assertTrue(sink.snapshots.isEmpty());
+        decoder.decode(data, 4, data.length - 4, sink);
+
+        assertEquals(1, sink.snapshots.size());
+        assertEquals(Arrays.asList("E01", "F02", "E03", "F04", "F05", "F06", "F07", "F08", "F09", "E10"),
+                sink.snapshots.get(0));
+    }
+
+    @Test
+    public void fortyBoxDoorReport() throws Exception {
+        byte[] bits = new byte[5];
+        bits[4] = (byte) 0x80;
+        byte[] payload = new byte[7];
+        payload[0] = 1;
+        payload[1] = 40;
+        System.arraycopy(bits, 0, payload, 2, bits.length);
+        byte[] data = frame(CompactFrameDecoder.TYPE_DOOR_STATES, payload);
+        assertEquals(10, data.length);
+
+        new CompactFrameDecoder().decode(data, 0, data.length, sink);
+        List<String> snapshot = sink.snapshots.get(0);
+        assertEquals(40, snapshot.size());
+        assertEquals("C01", snapshot.get(0));
+        assertEquals("O40", snapshot.get(39));
+    }
+
+    @Test
+    public void skipsGarbageAndUnknownFrames() throws Exception {
+        byte[] data = concat(new byte[]{'x', 'y'}, frame(0x7F, new byte[]{1, 2, 3}), textFrame("A"));
+        new CompactFrameDecoder().decode(data, 0, data.length, sink);
+        assertEquals(Arrays.asList("A"), sink.frames);
+        assertTrue(sink.snapshots.isEmpty());
+    }
+
+    @Test
+    public void dropsTruncatedBoxStates() throws Exception {
+        byte[] data = frame(CompactFrameDecoder.TYPE_EMPTY_STATES, new byte[]{1, 40, 0});
+        new CompactFrameDecoder().decode(data, 0, data.length, sink);
+        assertTrue(sink.snapshots.isEmpty());
+    }
+
+    private static byte[] textFrame(String text) {
+        return frame(CompactFrameDecoder.TYPE_TEXT, text.getBytes(US_ASCII));
+    }
+
+    private static byte[] frame(int type, byte[] payload) {
+        return concat(new byte[]{(byte) CompactFrameDecoder.SYNC, (byte) type, (byte) payload.length}, payload);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] result = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, result, offset, part.length);
+            offset += part.length;
+        }
+        return result;
+    }
+
+    private static class RecordingSink implements FrameDecoder.Sink {
+        final List<String> frames = new ArrayList<>();
+        final List<List<String>> snapshots = new ArrayList<>();
+
+        @Override
+        public void onFrame(String frame) {
+            frames.add(frame);
+        }
+
+        @Override
+        public void onSnapshot(List<String> frames) {
+            snapshots.add(frames);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.example.jin.lockertest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives the {@link ResponseAggregator} with a virtual dispatcher that records messages and runs timeouts
+ * on a virtual clock.
+ */
+public class ResponseAggregatorTest {
+    private VirtualDispatcher dispatcher;
+    private ResponseAggregator aggregator;
+
+    @Before
+    public void setUp() throws Exception {
+        dispatcher = new VirtualDispatcher();
+        aggregator = new ResponseAggregator(dispatcher);
+    }
+
+    @Test
+    public void singleFramesPassThrough() throws Exception {
+        aggregator.onCommandSent("O01T");
+        aggregator.onFrame("A");
+        aggregator.onFrame("F01");
+        assertEquals(2, dispatcher.messages.size());
+        assertMessage(0, Constants.MESSAGE_INCOMING_MESSAGE, "A");
+        assertMessage(1, Constants.MESSAGE_INCOMING_MESSAGE, "F01");
+    }
+
+    @Test
+    public void completesOnExpectedCount() throws Exception {
+        aggregator.onCommandSent("E");
+        aggregator.onFrame(ResponseAggregator.ACKNOWLEDGE);
+        for (int box = 1; box <= ResponseAggregator.DEFAULT_BOX_COUNT; box++) {
+            aggregator.onFrame(String.format("F%02d", box));
+        }
+        assertEquals(2, dispatcher.messages.size());
+        assertMessage(0, Constants.MESSAGE_INCOMING_MESSAGE, ResponseAggregator.ACKNOWLEDGE);
+        assertEquals(Constants.MESSAGE_INCOMING_RESPONSE, dispatcher.messages.get(1).what);
+        assertEquals(ResponseAggregator.DEFAULT_BOX_COUNT, ((List<?>) dispatcher.messages.get(1).obj).size());
+        assertFalse(dispatcher.hasPending());
+
+        // the rule is done, following frames are single responses again.
+        aggregator.onFrame("F01");
+        assertMessage(2, Constants.MESSAGE_INCOMING_MESSAGE, "F01");
+    }
+
+    @Test
+    public void completesOnTerminator() throws Exception {
+        aggregator.expect(new ResponseAggregator.CompletionRule(0, "END", 0));
+        aggregator.onFrame("E01");
+        aggregator.onFrame("F02");
+        aggregator.onFrame("END");
+        assertEquals(1, dispatcher.messages.size());
+        assertMessage(0, Constants.MESSAGE_INCOMING_RESPONSE, Arrays.asList("E01", "F02"));
+    }
+
+    @Test
+    public void completesOnIdleTimeoutBetweenFrames() throws Exception {
+        aggregator.onCommandSent("D");
+        aggregator.onFrame("C01");
+        dispatcher.advance(ResponseAggregator.DEFAULT_IDLE_TIMEOUT_MS - 1);
+        aggregator.onFrame("O02");
+        dispatcher.advance(ResponseAggregator.DEFAULT_IDLE_TIMEOUT_MS - 1);
+        assertTrue(dispatcher.messages.isEmpty());
+
+        dispatcher.advance(1);
+        assertEquals(1, dispatcher.messages.size());
+        assertMessage(0, Constants.MESSAGE_INCOMING_RESPONSE, Arrays.asList("C01", "O02"));
+    }
+
+    @Test
+    public void slowAcknowledgeKeepsRuleArmed() throws Exception {
+        aggregator.onCommandSent("E");
+        dispatcher.advance(ResponseAggregator.DEFAULT_IDLE_TIMEOUT_MS * 2);
+        aggregator.onFrame(ResponseAggregator.ACKNOWLEDGE);
+        dispatcher.advance(ResponseAggregator.DEFAULT_IDLE_TIMEOUT_MS * 2);
+        aggregator.onFrame("E01");
+        aggregator.onFrame("F02");
+        assertEquals(1, dispatcher.messages.size());
+
+        dispatcher.advance(ResponseAggregator.DEFAULT_IDLE_TIMEOUT_MS);
+        assertEquals(2, dispatcher.messages.size());
+        assertMessage(1, Constants.MESSAGE_INCOMING_RESPONSE, Arrays.asList("E01", "F02"));
+    }
+
+    @Test
+    public void firstFrameTimeoutDisarmsRule() throws Exception {
+        aggregator.onCommandSent("E");
+        dispatcher.advance(ResponseAggregator.DEFAULT_FIRST_FRAME_TIMEOUT_MS);
+        assertTrue(dispatcher.messages.isEmpty());
+        aggregator.onFrame("E01");
+        assertMessage(0, Constants.MESSAGE_INCOMING_MESSAGE, "E01");
+    }
+
+    @Test
+    public void expectFlushesPreviousGroup() throws Exception {
+        aggregator.onCommandSent("D");
+        aggregator.onFrame("C01");
+        aggregator.onCommandSent("E");
+        assertEquals(1, dispatcher.messages.size());
+        assertMessage(0, Constants.MESSAGE_INCOMING_RESPONSE, Arrays.asList("C01"));
+
+        aggregator.onFrame("E01");
+        dispatcher.advance(ResponseAggregator.DEFAULT_IDLE_TIMEOUT_MS);
+        assertMessage(1, Constants.MESSAGE_INCOMING_RESPONSE, Arrays.asList("E01"));
+    }
+
+    @Test
+    public void snapshotCompletesRule() throws Exception {
+        aggregator.onCommandSent("E");
+        aggregator.onSnapshot(Arrays.asList("E01", "F02"));
+        assertEquals(1, dispatcher.messages.size());
+        assertMessage(0, Constants.MESSAGE_INCOMING_RESPONSE, Arrays.asList("E01", "F02"));
+        assertFalse(dispatcher.hasPending());
+    }
+
+    @Test
+    public void resetDropsCollectedFrames() throws Exception {
+        aggregator.onCommandSent("E");
+        aggregator.onFrame("E01");
+        aggregator.reset();
+        assertFalse(dispatcher.hasPending());
+        dispatcher.advance(ResponseAggregator.DEFAULT_FIRST_FRAME_TIMEOUT_MS);
+        assertTrue(dispatcher.messages.isEmpty());
+
+        aggregator.onFrame("F02");
+        assertMessage(0, Constants.MESSAGE_INCOMING_MESSAGE, "F02");
+    }
+
+    private void assertMessage(int index, int what, Object obj) {
+        assertEquals(what, dispatcher.messages.get(index).what);
+        assertEquals(obj, dispatcher.messages.get(index).obj);
+    }
+
+    private static class DispatchedMessage {
+        final int what;
+        final Object obj;
+
+        DispatchedMessage(int what, Object obj) {
+            this.what = what;
+            this.obj = obj;
+        }
+    }
+
+    private static class VirtualDispatcher implements ResponseAggregator.Dispatcher {
+        final List<DispatchedMessage> messages = new ArrayList<>();
+        final Map<Runnable, Long> scheduled = new HashMap<>();
+        long time;
+
+        @Override
+        public void dispatch(int what, Object obj) {
+            messages.add(new DispatchedMessage(what, obj));
+        }
+
+        @Override
+        public void schedule(Runnable runnable, long delayMillis) {
+            scheduled.put(runnable, time + delayMillis);
+        }
+
+        @Override
+        public void cancel(Runnable runnable) {
+            scheduled.remove(runnable);
+        }
+
+        boolean hasPending() {
+            return !scheduled.isEmpty();
+        }
+
+        void advance(long millis) {
+            time += millis;
+            for (Map.Entry<Runnable, Long> entry : new ArrayList<>(scheduled.entrySet())) {
+                if (entry.getValue() <= time && scheduled.remove(entry.getKey()) != null) {
+                    entry.getKey().run();
+                }
+            }
+        }
+    }
+}